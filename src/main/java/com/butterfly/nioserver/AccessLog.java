@@ -0,0 +1,263 @@
+package com.butterfly.nioserver;
+
+import com.butterfly.nioserver.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步访问日志
+ * <p>
+ * worker线程只负责把字段填进预分配的环形缓冲区槽位（无锁，CAS抢占序号），
+ * 由单独的写线程批量格式化并通过FileChannel写入文件，文件超过上限时滚动。
+ * 缓冲区满时直接丢弃记录并计数，绝不阻塞worker线程。
+ * <p>
+ * 每行一条记录，字段以tab分隔：时间 远端地址 方法 资源 状态码 字节数 缓存命中 排队耗时(us) 处理耗时(us)
+ */
+public final class AccessLog implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+    // 空闲时写线程的休眠时间
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // 资源字段由客户端决定，超过该长度时截断，保证一行总能放进写缓冲区
+    private static final int MAX_RESOURCE = 2048;
+
+    private static final class Slot {
+        // 已发布的序号，等于读取序号时槽位可读
+        volatile long published = -1;
+        long timestamp;
+        SocketChannel client;
+        String verb;
+        String resource;
+        int status;
+        long bytes;
+        boolean hit;
+        long queueNanos;
+        long serviceNanos;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final File file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final StringBuilder line = new StringBuilder(256);
+    private final DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private FileChannel channel;
+    private long reportedDropped;
+    // 不用中断停止写线程，中断会关闭正在写的FileChannel
+    private volatile boolean stopped;
+    private volatile Thread writer;
+
+    /**
+     * @param file     log file
+     * @param capacity ring buffer slot count, rounded up to a power of two
+     * @param maxBytes rotate when the file grows beyond this size
+     * @param maxFiles rotated files kept as file.1 ... file.N
+     */
+    public AccessLog(File file, int capacity, long maxBytes, int maxFiles) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; ++i) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        format.setTimeZone(TimeZone.getDefault());
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null)
+            Files.createDirectories(parent.toPath());
+        channel = open();
+    }
+
+    /**
+     * 记录一次请求，缓冲区已满时丢弃
+     *
+     * @return false if the record was dropped
+     */
+    public boolean log(SocketChannel client, String verb, String resource, int status, long bytes,
+                       boolean hit, long queueNanos, long serviceNanos) {
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= slots.length) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        Slot slot = slots[(int) (seq & mask)];
+        slot.timestamp = System.currentTimeMillis();
+        slot.client = client;
+        slot.verb = verb;
+        slot.resource = resource;
+        slot.status = status;
+        slot.bytes = bytes;
+        slot.hit = hit;
+        slot.queueNanos = queueNanos;
+        slot.serviceNanos = serviceNanos;
+        // volatile写，保证上面的字段对写线程可见
+        slot.published = seq;
+        return true;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 停止写线程，缓冲区中剩余的记录写完后退出
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * 写线程
+     */
+    @Override
+    public void run() {
+        writer = Thread.currentThread();
+        while (!stopped) {
+            try {
+                if (!drain()) {
+                    flush();
+                    reportDropped();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (IOException e) {
+                logger.error("access log write failed: {}", Utils.errorStack(e));
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+        try {
+            drain();
+            flush();
+        } catch (IOException e) {
+            logger.error("access log write failed: {}", Utils.errorStack(e));
+        } finally {
+            Utils.closeQuietly(channel);
+        }
+    }
+
+    /**
+     * 取出所有已发布的记录写入缓冲区
+     *
+     * @return 是否取到了记录
+     */
+    private boolean drain() throws IOException {
+        boolean any = false;
+        for (; ; ) {
+            long seq = head;
+            Slot slot = slots[(int) (seq & mask)];
+            if (slot.published != seq) {
+                return any;
+            }
+            any = true;
+            format(slot);
+            slot.client = null;
+            // 释放槽位
+            head = seq + 1;
+
+            byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+            if (writeBuffer.remaining() < bytes.length)
+                flush();
+            writeBuffer.put(bytes);
+        }
+    }
+
+    private void format(Slot slot) {
+        InetAddress remote = slot.client == null ? null : slot.client.socket().getInetAddress();
+        line.setLength(0);
+        line.append(format.format(new Date(slot.timestamp))).append('\t')
+                .append(remote == null ? "-" : remote.getHostAddress()).append('\t')
+                .append(slot.verb).append('\t')
+                .append(slot.resource, 0, Math.min(slot.resource.length(), MAX_RESOURCE)).append('\t')
+                .append(slot.status).append('\t')
+                .append(slot.bytes).append('\t')
+                .append(slot.hit ? "HIT" : "MISS").append('\t')
+                .append(TimeUnit.NANOSECONDS.toMicros(slot.queueNanos)).append('\t')
+                .append(TimeUnit.NANOSECONDS.toMicros(slot.serviceNanos)).append('\n');
+    }
+
+    private void flush() throws IOException {
+        if (writeBuffer.position() == 0) {
+            return;
+        }
+        if (!channel.isOpen())
+            channel = open();
+        writeBuffer.flip();
+        try {
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
+            }
+        } finally {
+            // 写失败时丢弃这一批，缓冲区不能停在读模式
+            writeBuffer.clear();
+        }
+        if (channel.size() >= maxBytes)
+            rotate();
+    }
+
+    private void reportDropped() {
+        long total = dropped.get();
+        if (total != reportedDropped) {
+            logger.warn("access log overloaded, {} records dropped", total - reportedDropped);
+            reportedDropped = total;
+        }
+    }
+
+    /**
+     * access.log -> access.log.1 -> ... -> access.log.N
+     */
+    private void rotate() throws IOException {
+        channel.close();
+        try {
+            for (int i = maxFiles - 1; i > 0; --i) {
+                File from = new File(file.getPath() + "." + i);
+                if (from.exists())
+                    Files.move(from.toPath(), new File(file.getPath() + "." + (i + 1)).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (maxFiles > 0)
+                Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+            else
+                Files.delete(file.toPath());
+        } finally {
+            // 滚动失败时继续写当前文件
+            channel = open();
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,147 @@
+package com.butterfly.nioserver;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 连接准入控制
+ * <p>
+ * 按远端地址统计连接数，并用令牌桶限制每个地址的请求速率。地址表分段加锁，
+ * 每段是按访问顺序排列的LinkedHashMap，超过容量时淘汰最久未访问且没有存活连接的地址。
+ * 全局连接数上限和单连接未发送字节上限由{@link NioHttpServer}在选择器线程中执行。
+ */
+public class AdmissionControl {
+
+    private static final int STRIPES = 16;
+
+    // 全局连接数上限，达到后暂停accept
+    private final int maxConnections = Integer.getInteger("nioserver.admission.maxConnections", 10000);
+    // 单个地址的连接数上限
+    private final int maxConnectionsPerAddress = Integer.getInteger("nioserver.admission.maxConnectionsPerAddress", 256);
+    // 单个地址每秒请求数，0表示不限
+    private final int requestsPerSecond = Integer.getInteger("nioserver.admission.requestsPerSecond", 0);
+    // 令牌桶容量，默认等于每秒请求数
+    private final int burst = Integer.getInteger("nioserver.admission.burst", requestsPerSecond);
+    // 单个连接待发送字节上限，超过后停止读取该连接直到写出
+    private final long maxOutstandingBytes = Long.getLong("nioserver.admission.maxOutstandingBytes", 4L * 1024 * 1024);
+
+    private final Segment[] segments = new Segment[STRIPES];
+
+    private static final class Address {
+        int connections;
+        double tokens;
+        long refilled;
+    }
+
+    private static final class Segment extends LinkedHashMap<InetAddress, Address> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        /**
+         * 超过容量时从最久未访问的一端找一个可淘汰的地址；有存活连接的地址不淘汰，否则断开时计数会错，
+         * 只看最老的一个的话，它有长连接时整段都不会再淘汰
+         */
+        void evict(InetAddress added) {
+            if (size() <= capacity) {
+                return;
+            }
+            Iterator<Map.Entry<InetAddress, Address>> it = entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<InetAddress, Address> entry = it.next();
+                if (entry.getValue().connections == 0 && entry.getKey() != added) {
+                    it.remove();
+                    return;
+                }
+            }
+        }
+    }
+
+    public AdmissionControl() {
+        int capacity = Integer.getInteger("nioserver.admission.trackedAddresses", 65536);
+        for (int i = 0; i < STRIPES; ++i) {
+            segments[i] = new Segment(Math.max(1, capacity / STRIPES));
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getMaxOutstandingBytes() {
+        return maxOutstandingBytes;
+    }
+
+    /**
+     * 新连接准入
+     *
+     * @return false if the address has too many connections
+     */
+    public boolean connect(InetAddress remote) {
+        Segment segment = segmentFor(remote);
+        synchronized (segment) {
+            Address address = address(segment, remote);
+            if (address.connections >= maxConnectionsPerAddress) {
+                return false;
+            }
+            ++address.connections;
+            return true;
+        }
+    }
+
+    public void disconnect(InetAddress remote) {
+        Segment segment = segmentFor(remote);
+        synchronized (segment) {
+            Address address = segment.get(remote);
+            if (address != null && address.connections > 0)
+                --address.connections;
+        }
+    }
+
+    /**
+     * 取一个令牌
+     *
+     * @return false if the address exceeds its request rate
+     */
+    public boolean acquire(InetAddress remote) {
+        if (requestsPerSecond <= 0 || remote == null) {
+            return true;
+        }
+        Segment segment = segmentFor(remote);
+        synchronized (segment) {
+            Address address = address(segment, remote);
+            long now = System.nanoTime();
+            address.tokens = Math.min(burst, address.tokens + (now - address.refilled) * requestsPerSecond / 1e9);
+            address.refilled = now;
+            if (address.tokens < 1) {
+                return false;
+            }
+            address.tokens -= 1;
+            return true;
+        }
+    }
+
+    private Address address(Segment segment, InetAddress remote) {
+        Address address = segment.get(remote);
+        if (address == null) {
+            address = new Address();
+            address.tokens = burst;
+            address.refilled = System.nanoTime();
+            segment.put(remote, address);
+            segment.evict(remote);
+        }
+        return address;
+    }
+
+    private Segment segmentFor(InetAddress remote) {
+        int h = remote == null ? 0 : remote.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (STRIPES - 1)];
+    }
+}
@@ -1,9 +1,14 @@
 package com.butterfly.nioserver;
 
+import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 public class ButterflySoftCache {
 
@@ -11,11 +16,29 @@ public class ButterflySoftCache {
     public static class CacheEntry {
         public byte[] header;
         public byte[] body;
+        // small assets only: status line, headers and body pre-rendered into one read-only
+        // direct buffer, duplicate() it per request
+        public ByteBuffer response;
+        // response status, for the access log
+        public int status = 200;
+        // the backing file, null if the entry is not backed by a file (e.g. 404)
+        public String file;
+        public boolean zip;
+        public long lastModified;
+        // access count, used to decide what goes into the snapshot
+        public final AtomicInteger hits = new AtomicInteger();
 
         public CacheEntry(byte[] header, byte[] body) {
             this.header = header;
             this.body = body;
         }
+
+        public CacheEntry(byte[] header, byte[] body, String file, boolean zip, long lastModified) {
+            this(header, body);
+            this.file = file;
+            this.zip = zip;
+            this.lastModified = lastModified;
+        }
     }
 
     public static class MapEntry extends SoftReference<CacheEntry> {
@@ -29,6 +52,13 @@ public class ButterflySoftCache {
 
     }
 
+    /**
+     * loads an entry on a cache miss
+     */
+    public interface Loader {
+        CacheEntry load() throws IOException;
+    }
+
     private final ReferenceQueue<CacheEntry> queue = new ReferenceQueue<>();
 
     /**
@@ -36,6 +66,11 @@ public class ButterflySoftCache {
      */
     private final Map<String, MapEntry> map = new ConcurrentHashMap<>();
 
+    /**
+     * loads in flight, keyed the same as the back map
+     */
+    private final Map<String, CompletableFuture<CacheEntry>> loading = new ConcurrentHashMap<>();
+
     public CacheEntry get(String key) {
         CacheEntry result = null;
         MapEntry entry = map.get(key);
@@ -43,6 +78,8 @@ public class ButterflySoftCache {
             result = entry.get();
             if (result == null) {
                 map.remove(entry.key);
+            } else {
+                result.hits.incrementAndGet();
             }
         }
         return result;
@@ -57,7 +94,58 @@ public class ButterflySoftCache {
 
     public void put(String key, byte[] header, byte[] body) {
         processQueue();
-        map.put(key, new MapEntry(key, new CacheEntry(header, body), queue));
+        put(key, new CacheEntry(header, body));
+    }
+
+    public void put(String key, CacheEntry entry) {
+        processQueue();
+        map.put(key, new MapEntry(key, entry, queue));
+    }
+
+    public void remove(String key) {
+        map.remove(key);
+    }
+
+    /**
+     * single-flight loading: concurrent misses for the same key share one load.
+     * the first caller runs the loader on its own thread, later callers get the
+     * same future and should attach a callback instead of blocking on it.
+     *
+     * @return a future completed with the entry, or exceptionally with the loader's error
+     */
+    public CompletableFuture<CacheEntry> load(String key, Loader loader) {
+        CompletableFuture<CacheEntry> future = new CompletableFuture<>();
+        CompletableFuture<CacheEntry> inFlight = loading.putIfAbsent(key, future);
+        if (inFlight != null) {
+            return inFlight;
+        }
+        try {
+            // another load may have finished between the caller's miss and now
+            CacheEntry entry = get(key);
+            if (entry == null) {
+                entry = loader.load();
+                put(key, entry);
+            }
+            future.complete(entry);
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        } finally {
+            // remove after put, so a later miss either sees the entry or starts a new load
+            loading.remove(key, future);
+        }
+        return future;
+    }
+
+    /**
+     * visit every entry which is still reachable
+     */
+    public void forEach(BiConsumer<String, CacheEntry> action) {
+        for (MapEntry ref : map.values()) {
+            CacheEntry entry = ref.get();
+            if (entry != null) {
+                action.accept(ref.key, entry);
+            }
+        }
     }
 
     /**
@@ -75,6 +163,8 @@ public class ButterflySoftCache {
                     size += entry.body.length;
                 if (entry.header != null)
                     size += entry.header.length;
+                if (entry.response != null)
+                    size += entry.response.capacity();
 
                 sb.append(key).append("\t").append(size).append("\t").append(size / 1024).append("k\n");
                 memory += size;
@@ -0,0 +1,225 @@
+package com.butterfly.nioserver;
+
+import com.butterfly.nioserver.ButterflySoftCache.CacheEntry;
+import com.butterfly.nioserver.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 缓存预热
+ * <p>
+ * 重启后{@link ButterflySoftCache}为空，所有请求都要读盘和gzip，这里在选择器线程启动前
+ * 通过清单文件或访问频率快照把热点资源提前装进缓存。快照包含已经构造好的响应头和gzip变体，
+ * 恢复时只需校验文件修改时间，文件有变化才重新读盘。
+ */
+public final class CacheWarmer {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheWarmer.class);
+
+    private static final int MAGIC = 0x42465343; // "BFSC"
+    private static final int VERSION = 1;
+
+    private final ButterflySoftCache cache;
+    private final ResourceIndex index;
+    private final int parallelism;
+
+    /**
+     * @param cache       cache to warm up
+     * @param index       index of wwwRoot, snapshot entries outside of it are ignored
+     * @param parallelism fork-join pool size used for loading
+     */
+    public CacheWarmer(ButterflySoftCache cache, ResourceIndex index, int parallelism) {
+        this.cache = cache;
+        this.index = index;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 按清单预热，每行一个相对wwwRoot的资源路径，空行和#开头的行忽略
+     *
+     * @return 装入缓存的条目数（gzip变体单独计数）
+     */
+    public int warmFromManifest(File manifest) throws IOException {
+        List<String> resources = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#"))
+                resources.add(line);
+        }
+
+        AtomicInteger loaded = new AtomicInteger();
+        parallel(() -> resources.parallelStream().forEach(resource -> {
+            String uri = ResourceIndex.normalize(resource);
+            ResourceIndex.Resource target = uri == null ? null : index.get(uri);
+            if (target == null) {
+                logger.warn("skip manifest entry {}: not found", resource);
+                return;
+            }
+            try {
+                cache.put(target.path, ResourceLoader.load(target, false));
+                loaded.incrementAndGet();
+                // 文本类型同时预热gzip变体
+                if (ResourceLoader.canZip(target.mime)) {
+                    cache.put(ResourceLoader.cacheKey(target.path, true),
+                            ResourceLoader.load(target, true));
+                    loaded.incrementAndGet();
+                }
+            } catch (IOException e) {
+                logger.warn("skip manifest entry {}: {}", resource, e.getMessage());
+            }
+        }));
+        return loaded.get();
+    }
+
+    /**
+     * 从快照恢复，文件修改时间不变的直接使用快照里的数据，否则重新读盘，文件已不存在的丢弃
+     *
+     * @return 装入缓存的条目数
+     */
+    public int restore(File snapshot) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(snapshot))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warn("ignore incompatible cache snapshot {}", snapshot);
+                return 0;
+            }
+            for (int i = in.readInt(); i > 0; --i) {
+                records.add(Record.read(in));
+            }
+        }
+
+        AtomicInteger loaded = new AtomicInteger();
+        parallel(() -> records.parallelStream().forEach(record -> {
+            if (!record.key.startsWith(index.getRoot()))
+                return;
+            ResourceIndex.Resource target = index.getByPath(record.file);
+            if (target == null)
+                return;
+            CacheEntry entry;
+            if (target.lastModified == record.lastModified) {
+                entry = ResourceLoader.newEntry(record.header, record.body, record.file, record.zip,
+                        record.lastModified);
+            } else {
+                try {
+                    entry = ResourceLoader.load(target, record.zip);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+            // 保留访问频率，下一次快照依然有效
+            entry.hits.set(record.hits);
+            cache.put(record.key, entry);
+            loaded.incrementAndGet();
+        }));
+        return loaded.get();
+    }
+
+    /**
+     * 按访问次数降序写入最多limit个条目，先写临时文件再原子替换；同一时间只有一个线程写临时文件
+     *
+     * @return 写入的条目数
+     */
+    public synchronized int snapshot(File snapshot, int limit) throws IOException {
+        List<Record> records = new ArrayList<>();
+        cache.forEach((key, entry) -> {
+            // 404等不对应磁盘文件的条目不写入
+            if (entry.file != null && entry.body != null)
+                records.add(new Record(key, entry));
+        });
+        records.sort(Comparator.comparingInt((Record r) -> r.hits).reversed());
+        int count = Math.min(limit, records.size());
+
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(tmp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; ++i) {
+                records.get(i).write(out);
+            }
+        }
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * 在独立的fork-join池里执行并行流，避免占用公共池
+     */
+    private void parallel(Runnable task) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("cache warm-up interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("cache warm-up failed: " + Utils.errorStack(e.getCause()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static class Record {
+        String key;
+        String file;
+        boolean zip;
+        long lastModified;
+        int hits;
+        byte[] header;
+        byte[] body;
+
+        Record() {
+        }
+
+        Record(String key, CacheEntry entry) {
+            this.key = key;
+            this.file = entry.file;
+            this.zip = entry.zip;
+            this.lastModified = entry.lastModified;
+            this.hits = entry.hits.get();
+            this.header = entry.header;
+            this.body = entry.body;
+        }
+
+        static Record read(DataInputStream in) throws IOException {
+            Record record = new Record();
+            record.key = in.readUTF();
+            record.file = in.readUTF();
+            record.zip = in.readBoolean();
+            record.lastModified = in.readLong();
+            record.hits = in.readInt();
+            record.header = new byte[in.readInt()];
+            in.readFully(record.header);
+            record.body = new byte[in.readInt()];
+            in.readFully(record.body);
+            return record;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(key);
+            out.writeUTF(file);
+            out.writeBoolean(zip);
+            out.writeLong(lastModified);
+            out.writeInt(hits);
+            out.writeInt(header.length);
+            out.write(header);
+            out.writeInt(body.length);
+            out.write(body);
+        }
+    }
+}
@@ -6,6 +6,7 @@ public final class ChangeRequest {
 
     public static final int REGISTER = 1;   // 注册
     public static final int CHANGE_OPS = 2; // 替换事件
+    public static final int TLS_TASKS_DONE = 3; // TLS握手任务已完成，继续握手
 
     public SocketChannel socketChannel;
     public int type;
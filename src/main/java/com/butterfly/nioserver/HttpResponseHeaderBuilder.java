@@ -7,7 +7,9 @@ import java.util.TreeMap;
 public class HttpResponseHeaderBuilder {
     public static final String OK_200 = "HTTP/1.1 200 OK";
     public static final String NEW_LINE = "\r\n";
+    public static final String FORBIDDEN_403 = "HTTP/1.1 403 Forbidden";
     public static final String NOT_FOUND_404 = "HTTP/1.1 404 Not Find";
+    public static final String TOO_MANY_REQUESTS_429 = "HTTP/1.1 429 Too Many Requests";
     public static final String SERVER_ERROR_500 = "HTTP/1.1 500 Internal Server Error";
     public static final String CONTENT_TYPE = "Content-Type";
     public static final String CONNECTION = "Connection";
@@ -16,6 +18,7 @@ public class HttpResponseHeaderBuilder {
     public static final String CONTENT_ENCODING = "Content-Encoding";
     public static final String ACCEPT_ENCODING = "Accept-Encoding";
     public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String ETAG = "ETag";
     public static final String GZIP = "gzip";
 
     private String status;
@@ -4,16 +4,21 @@ import com.butterfly.nioserver.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 基于NIO的HTTP服务器类
@@ -22,22 +27,93 @@ public class NioHttpServer implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(NioHttpServer.class);
 
-    private final ServerSocketChannel serverChannel;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // 排空期间select的超时时间
+    private static final long DRAIN_POLL_MILLIS = 50L;
+    // 排空期间连接空闲超过该时间才关闭，给刚建立的连接留出发送请求的时间
+    private static final long DRAIN_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(500L);
+
+    // 监听套接字可能在换端口时替换，只由选择器线程修改
+    private ServerSocketChannel serverChannel;
+    private SelectionKey serverKey;
     private final Selector selector;
     private final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
-    private final List<ChangeRequest> changeRequests = new LinkedList<>();
+    private final Queue<ChangeRequest> changeRequests = new ConcurrentLinkedQueue<>();
+    // 需要在选择器线程中执行的任务，如换端口、开始排空
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
     private final Map<SocketChannel, ConcurrentLinkedQueue<ByteBuffer>> pendingSentMap = new HashMap<>();
-    private final List<RequestHandler> requestHandlers = new ArrayList<>();
+    // 写时复制，worker数可以在运行中调整
+    private volatile RequestHandler[] requestHandlers = new RequestHandler[0];
+    private final AdmissionControl admission = new AdmissionControl();
+
+    private volatile boolean running = true;
+    // 排空状态，只由选择器线程读写
+    private boolean draining;
+    private long drainDeadline;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    // 为null时为明文
+    private final TlsContext tlsContext;
+    // TLS解密输出，只由选择器线程使用
+    private final ByteBuffer tlsAppBuffer;
+    // 每次wrap最多聚合的待发送缓冲区数
+    private final ByteBuffer[] tlsWrapSources = new ByteBuffer[16];
+    // 当前连接数，只由选择器线程读写
+    private int connections;
+
+    // 数组实现的selectedKeys，不支持时为null
+    private final SelectedSelectionKeySet selectedKeys;
+    // 阻塞select前先selectNow的次数，0表示直接阻塞，适合对延迟敏感且有空闲cpu的部署
+    private final int spinCount = Integer.getInteger("nioserver.selector.spin", 0);
+    // 每轮最多处理的ChangeRequest数，剩余的留到下一轮，避免饿死I/O事件
+    private final int maxTasks = Integer.getInteger("nioserver.selector.maxTasks", 256);
+    // 循环耗时统计的输出间隔（秒），0表示关闭
+    private final long statsIntervalNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("nioserver.selector.statsInterval", 0));
+
+    // 循环耗时统计，只由选择器线程读写
+    private long loops;
+    private long events;
+    private long tasks;
+    private long selectNanos;
+    private long processNanos;
 
     public NioHttpServer(InetAddress address, int port) throws IOException {
+        this(address, port, null);
+    }
+
+    /**
+     * @param tlsContext 不为null时该端口只接受TLS连接
+     */
+    public NioHttpServer(InetAddress address, int port, TlsContext tlsContext) throws IOException {
+        this.tlsContext = tlsContext;
+        this.tlsAppBuffer = tlsContext == null ? null : ByteBuffer.allocate(tlsContext.getApplicationBufferSize());
+
         // 初始化serverChannel并绑定IP和端口
-        serverChannel = ServerSocketChannel.open();
-        serverChannel.configureBlocking(false);
-        serverChannel.socket().bind(new InetSocketAddress(address, port));
+        serverChannel = openServerChannel(address, port);
 
         // 初始化选择器并注册serverChannel的ACCEPT事件
         selector = Selector.open();
-        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        selectedKeys = SelectedSelectionKeySet.install(selector);
+        serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * 连接状态，作为SelectionKey的attachment
+     */
+    private static final class Connection {
+        final InetAddress remote;
+        // 已提交但还没写出的字节数
+        final AtomicLong outstanding = new AtomicLong();
+        // TLS状态，明文连接为null
+        TlsSession tls;
+        // 处理该连接请求的worker，同一连接的数据总是交给同一个worker
+        RequestHandler worker;
+        // 最近一次读写的时间，排空时判断是否空闲
+        long lastActive = System.nanoTime();
+
+        Connection(InetAddress remote) {
+            this.remote = remote;
+        }
     }
 
     /**
@@ -45,60 +121,371 @@ public class NioHttpServer implements Runnable {
      */
     @Override
     public void run() {
-        for (SelectionKey key = null; ; ) {
+        long statsBegin = System.nanoTime();
+        while (running) {
             try {
-                synchronized (changeRequests) {
-                    for (ChangeRequest request : changeRequests) {
-                        switch (request.type) {
-                            case ChangeRequest.CHANGE_OPS:
-                                // 获取channel注册在指定selector上的事件SelectionKey
-                                key = request.socketChannel.keyFor(selector);
-                                if (key != null && key.isValid()) {
-                                    // 替换事件
-                                    key.interestOps(request.ops);
-                                }
-                                break;
-                            case ChangeRequest.REGISTER:
-                            default:
-                                // 其他情况不做处理
-                        }
-                    }
-                    // 处理完事件变换请求后清空请求列表
-                    changeRequests.clear();
-                }
+                long begin = System.nanoTime();
+                // 处理事件变换请求，有剩余时本轮不阻塞
+                boolean moreTasks = processChangeRequests();
 
-                // 阻塞等待至少一个事件触发
-                selector.select();
+                // 等待至少一个事件触发
+                long selectBegin = System.nanoTime();
+                events += select(moreTasks);
+                long selectEnd = System.nanoTime();
 
-                // 获取事件keys
-                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
-                while (selectedKeys.hasNext()) {
-                    key = selectedKeys.next();
-                    selectedKeys.remove();
-                    if (!key.isValid()) {
-                        continue;
-                    }
-                    if (key.isAcceptable()) {
-                        accept(); // 处理新套接字连接
-                    } else if (key.isReadable()) {
-                        read(key); // 处理读事件
-                    } else if (key.isWritable()) {
-                        write(key); // 处理写事件
-                    }
+                processSelectedKeys();
+
+                long end = System.nanoTime();
+                ++loops;
+                selectNanos += selectEnd - selectBegin;
+                processNanos += (selectBegin - begin) + (end - selectEnd);
+                if (statsIntervalNanos > 0 && end - statsBegin >= statsIntervalNanos) {
+                    reportLoopStats(end - statsBegin);
+                    statsBegin = end;
                 }
-            } catch (Exception e) {
-                if (key != null) {
-                    key.cancel();
-                    // 发生异常则关闭对应套接字
-                    Utils.closeQuietly(key.channel());
-                    logger.error("closed {}: {}", key.channel(), Utils.errorStack(e));
+                if (draining) {
+                    drain();
                 }
+            } catch (IOException e) {
+                logger.error("select failed: {}", Utils.errorStack(e));
+            }
+        }
+        Utils.closeQuietly(selector);
+        terminated.countDown();
+    }
+
+    /**
+     * 打开监听套接字
+     * <p>
+     * nioserver.inheritChannel=true时使用启动方（systemd的StandardInput=socket或inetd）传入的监听套接字，
+     * 进程重启时套接字由启动方持有，不会丢失连接；nioserver.reusePort=true时设置SO_REUSEPORT（JDK 9+，Linux），
+     * 新进程可以先绑定同一端口，再让旧进程排空退出。
+     */
+    private static ServerSocketChannel openServerChannel(InetAddress address, int port) throws IOException {
+        if (Boolean.getBoolean("nioserver.inheritChannel")) {
+            Channel inherited = System.inheritedChannel();
+            if (inherited instanceof ServerSocketChannel) {
+                ServerSocketChannel channel = (ServerSocketChannel) inherited;
+                channel.configureBlocking(false);
+                logger.info("using inherited channel {}", channel);
+                return channel;
             }
+            logger.warn("no inherited server socket, binding port {}", port);
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (Boolean.getBoolean("nioserver.reusePort"))
+                setReusePort(channel);
+            channel.socket().bind(new InetSocketAddress(address, port));
+        } catch (IOException e) {
+            Utils.closeQuietly(channel);
+            throw e;
         }
+        return channel;
     }
 
-    public void addRequestHandler(RequestHandler handler) {
-        requestHandlers.add(handler);
+    /**
+     * StandardSocketOptions.SO_REUSEPORT在JDK 9才有，通过反射设置
+     */
+    @SuppressWarnings("unchecked")
+    private static void setReusePort(ServerSocketChannel channel) throws IOException {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class
+                    .getField("SO_REUSEPORT").get(null);
+            channel.setOption(option, true);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            logger.warn("SO_REUSEPORT not supported: {}", e.toString());
+        }
+    }
+
+    /**
+     * 换端口：先绑定新端口，接受旧端口上已排队的连接后再关闭旧端口，失败时继续使用旧端口
+     */
+    public void rebind(InetAddress address, int port) {
+        runOnSelector(() -> {
+            if (draining) {
+                return;
+            }
+            ServerSocketChannel channel;
+            try {
+                channel = openServerChannel(address, port);
+            } catch (IOException e) {
+                logger.error("failed to bind port {}, keep the current listener: {}", port, e.getMessage());
+                return;
+            }
+            if (channel == serverChannel) {
+                // 继承的监听套接字由启动方决定端口
+                logger.warn("listener is inherited, ignore the port change to {}", port);
+                return;
+            }
+            try {
+                SelectionKey key = channel.register(selector, serverKey.interestOps());
+                closeServerChannel();
+                serverChannel = channel;
+                serverKey = key;
+                logger.info("listening on {}", channel.socket().getLocalSocketAddress());
+            } catch (IOException e) {
+                Utils.closeQuietly(channel);
+                logger.error("failed to register port {}: {}", port, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 优雅停机：停止accept，继续处理已建立连接上的请求，连接空闲后关闭，超时后强制关闭剩余连接
+     *
+     * @return 是否在超时前完成排空并退出选择器线程
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        runOnSelector(() -> {
+            if (draining) {
+                return;
+            }
+            draining = true;
+            drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            closeServerChannel();
+            logger.info("draining {} connections", connections);
+        });
+        return terminated.await(timeoutMillis + 1000L, TimeUnit.MILLISECONDS);
+    }
+
+    private void runOnSelector(Runnable task) {
+        selectorTasks.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * 接受已在backlog中的连接后关闭监听套接字，尽量不让排队的连接被重置
+     */
+    private void closeServerChannel() {
+        if (serverKey.interestOps() != 0) {
+            try {
+                while (accept(serverChannel)) {
+                    // 直到backlog为空
+                }
+            } catch (IOException e) {
+                logger.warn("accept failed while closing listener: {}", e.getMessage());
+            }
+        }
+        serverKey.cancel();
+        Utils.closeQuietly(serverChannel);
+    }
+
+    /**
+     * 排空：关闭已空闲的连接，全部关闭或超时后退出
+     */
+    private void drain() {
+        boolean workersIdle = true;
+        for (RequestHandler handler : requestHandlers) {
+            workersIdle &= handler.isIdle();
+        }
+        long now = System.nanoTime();
+        boolean expired = now >= drainDeadline;
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            Object attachment = key.attachment();
+            if (!(attachment instanceof Connection) || !key.isValid()) {
+                continue;
+            }
+            Connection connection = (Connection) attachment;
+            // 已移除的worker不在requestHandlers中，单独检查连接所属的worker
+            boolean idle = workersIdle && (connection.worker == null || connection.worker.isIdle());
+            if (expired || (idle && now - connection.lastActive >= DRAIN_IDLE_NANOS && !hasPendingWrite(key))) {
+                close(key);
+            }
+        }
+        if (connections == 0 || expired) {
+            if (expired)
+                logger.warn("drain timed out, connections closed");
+            running = false;
+        }
+    }
+
+    private boolean hasPendingWrite(SelectionKey key) {
+        ConcurrentLinkedQueue<ByteBuffer> queue;
+        synchronized (pendingSentMap) {
+            queue = pendingSentMap.get(key.channel());
+        }
+        if (queue != null && !queue.isEmpty()) {
+            return true;
+        }
+        TlsSession tls = ((Connection) key.attachment()).tls;
+        return tls != null && (tls.netOut != null || tls.netIn != null);
+    }
+
+    /**
+     * @return 是否还有未处理的请求
+     */
+    private boolean processChangeRequests() {
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+            task.run();
+        }
+
+        ChangeRequest request;
+        for (int i = 0; i < maxTasks && (request = changeRequests.poll()) != null; ++i) {
+            ++tasks;
+            switch (request.type) {
+                case ChangeRequest.CHANGE_OPS:
+                    // 获取channel注册在指定selector上的事件SelectionKey
+                    SelectionKey key = request.socketChannel.keyFor(selector);
+                    if (key != null && key.isValid()) {
+                        // 替换事件
+                        key.interestOps(withRead(key, request.ops));
+                    }
+                    break;
+                case ChangeRequest.TLS_TASKS_DONE:
+                    resumeHandshake(request.socketChannel.keyFor(selector));
+                    break;
+                case ChangeRequest.REGISTER:
+                default:
+                    // 其他情况不做处理
+            }
+        }
+        return !changeRequests.isEmpty();
+    }
+
+    /**
+     * 有待处理的请求时立即返回；否则先自旋selectNow（后半段让出cpu），仍无事件再阻塞
+     */
+    private int select(boolean moreTasks) throws IOException {
+        if (moreTasks) {
+            return selector.selectNow();
+        }
+        if (draining) {
+            return selector.select(DRAIN_POLL_MILLIS);
+        }
+        for (int i = 0; i < spinCount; ++i) {
+            int ready = selector.selectNow();
+            if (ready > 0 || !changeRequests.isEmpty()) {
+                return ready;
+            }
+            if (i >= spinCount >> 1) {
+                Thread.yield();
+            }
+        }
+        return selector.select();
+    }
+
+    private void processSelectedKeys() {
+        if (selectedKeys != null) {
+            // 按下标遍历，不分配迭代器
+            for (int i = 0; i < selectedKeys.size; ++i) {
+                processSelectedKey(selectedKeys.keys[i]);
+            }
+            selectedKeys.reset();
+        } else {
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                processSelectedKey(key);
+            }
+        }
+    }
+
+    private void processSelectedKey(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept((ServerSocketChannel) key.channel()); // 处理新套接字连接
+                return;
+            }
+            if (key.isReadable()) {
+                read(key); // 处理读事件
+            }
+            if (key.isValid() && key.isWritable()) {
+                write(key); // 处理写事件
+            }
+        } catch (SSLException e) {
+            // 握手失败或非法的TLS记录
+            tlsContext.handshakeFailed();
+            close(key);
+            if (logger.isDebugEnabled())
+                logger.debug("tls error {}: {}", key.channel(), e.getMessage());
+        } catch (Exception e) {
+            if (key.channel() instanceof ServerSocketChannel) {
+                // accept失败（如文件描述符耗尽）不关闭监听套接字
+                logger.error("accept failed: {}", Utils.errorStack(e));
+                return;
+            }
+            // 发生异常则关闭对应套接字
+            close(key);
+            logger.error("closed {}: {}", key.channel(), Utils.errorStack(e));
+        }
+    }
+
+    /**
+     * 关闭连接并释放准入名额，连接数降到上限以下时恢复accept
+     */
+    private void close(SelectionKey key) {
+        key.cancel();
+        Utils.closeQuietly(key.channel());
+        synchronized (pendingSentMap) {
+            pendingSentMap.remove(key.channel());
+        }
+        Object attachment = key.attach(null);
+        if (attachment instanceof Connection) {
+            Connection connection = (Connection) attachment;
+            if (connection.tls != null)
+                connection.tls.release(tlsContext);
+            if (connection.worker != null)
+                connection.worker.release((SocketChannel) key.channel());
+            admission.disconnect(connection.remote);
+            if (--connections < admission.getMaxConnections() && !draining && serverKey.isValid()
+                    && serverKey.interestOps() == 0) {
+                serverKey.interestOps(SelectionKey.OP_ACCEPT);
+                logger.info("{} connections, accept resumed", connections);
+            }
+        }
+    }
+
+    /**
+     * 待发送字节未超过上限时保持读事件，否则停止读取直到写出
+     */
+    private int withRead(SelectionKey key, int ops) {
+        Object attachment = key.attachment();
+        if (!(attachment instanceof Connection)
+                || ((Connection) attachment).outstanding.get() < admission.getMaxOutstandingBytes()) {
+            return ops | SelectionKey.OP_READ;
+        }
+        return ops & ~SelectionKey.OP_READ;
+    }
+
+    /**
+     * 请求速率准入，由worker线程在解析出完整请求后调用
+     *
+     * @return false if the client exceeds its request rate
+     */
+    public boolean acquire(SocketChannel channel) {
+        return admission.acquire(channel.socket().getInetAddress());
+    }
+
+    private void reportLoopStats(long elapsedNanos) {
+        if (loops > 0) {
+            logger.info("selector loop: {} iterations, {} events, {} tasks in {}ms, avg select {}us, avg process {}us, "
+                            + "array keys {}", loops, events, tasks, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                    TimeUnit.NANOSECONDS.toMicros(selectNanos / loops), TimeUnit.NANOSECONDS.toMicros(processNanos / loops),
+                    selectedKeys != null);
+        }
+        if (tlsContext != null)
+            logger.info(tlsContext.drainStats(elapsedNanos));
+        loops = events = tasks = selectNanos = processNanos = 0;
+    }
+
+    public synchronized void addRequestHandler(RequestHandler handler) {
+        RequestHandler[] handlers = Arrays.copyOf(requestHandlers, requestHandlers.length + 1);
+        handlers[handlers.length - 1] = handler;
+        requestHandlers = handlers;
+    }
+
+    /**
+     * 替换worker，已停止的worker处理完连接上进行中的请求后，该连接在下次读到数据时重新分配
+     */
+    public synchronized void setRequestHandlers(List<RequestHandler> handlers) {
+        requestHandlers = handlers.toArray(new RequestHandler[0]);
     }
 
     /**
@@ -106,46 +493,246 @@ public class NioHttpServer implements Runnable {
      * <p>
      * 配置新的套接字通道为非阻塞，并注册到Selector
      */
-    private void accept() throws IOException {
+    private boolean accept(ServerSocketChannel serverChannel) throws IOException {
         SocketChannel socketChannel = serverChannel.accept();
+        if (socketChannel == null) {
+            return false;
+        }
+        InetAddress remote = socketChannel.socket().getInetAddress();
+        if (!admission.connect(remote)) {
+            // 该地址连接过多，直接拒绝
+            Utils.closeQuietly(socketChannel);
+            if (logger.isDebugEnabled())
+                logger.debug("rejected connection: {}", socketChannel);
+            return true;
+        }
         if (logger.isDebugEnabled())
             logger.debug("new connection: {}", socketChannel);
-        socketChannel.configureBlocking(false);
-        socketChannel.register(selector, SelectionKey.OP_READ);
+        ++connections;
+        try {
+            socketChannel.configureBlocking(false);
+            Connection connection = new Connection(remote);
+            if (tlsContext != null)
+                connection.tls = tlsContext.newSession();
+            socketChannel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            --connections;
+            admission.disconnect(remote);
+            Utils.closeQuietly(socketChannel);
+            throw e;
+        }
+
+        if (connections >= admission.getMaxConnections()) {
+            // 达到全局连接数上限，暂停accept，新连接留在内核backlog中
+            serverKey.interestOps(0);
+            logger.warn("{} connections, accept paused", connections);
+        }
+        return true;
     }
 
     private void read(SelectionKey key) throws IOException {
         SocketChannel channel = (SocketChannel) key.channel();
+        TlsSession tls = ((Connection) key.attachment()).tls;
 
         // 调整指针，准备写入readBuffer
-        readBuffer.clear();
+        ByteBuffer buffer = readBuffer;
+        if (tls != null) {
+            // TLS连接读到该连接自己的密文缓冲区，不完整的记录留到下次
+            if (tls.netIn == null)
+                tls.netIn = tlsContext.acquireBuffer();
+            buffer = tls.netIn;
+        } else {
+            readBuffer.clear();
+        }
         int readCount;
         try {
-            readCount = channel.read(readBuffer);
+            readCount = channel.read(buffer);
         } catch (IOException e) {
             // 远程节点强制关闭了套接字
-            channel.close();
-            key.cancel();
-            logger.info("[{}] closed by exception: {}", channel, e.getMessage());
+            close(key);
+            if (logger.isDebugEnabled())
+                logger.debug("[{}] closed by exception: {}", channel, e.getMessage());
             return;
         }
 
         if (readCount == -1) {
             // 远程节点正常关闭了套接字
-            channel.close();
-            key.cancel();
-            logger.info("closed by shutdown" + channel);
+            close(key);
+            if (logger.isDebugEnabled())
+                logger.debug("closed by shutdown {}", channel);
             return;
         }
 
-        // 简单的负载均衡
-        int workerId = channel.hashCode() % requestHandlers.size();
-        if (logger.isDebugEnabled())
-            logger.debug("{} - {} - {}", selector.keys().size(), workerId, channel);
+        ((Connection) key.attachment()).lastActive = System.nanoTime();
+        if (tls != null) {
+            unwrap(key, tls);
+        } else {
+            dispatch(key, readBuffer.array(), readCount);
+        }
+    }
 
+    private void dispatch(SelectionKey key, byte[] data, int count) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
         // 选中的处理器去处理读取到的数据
         // 主动往handler中添加需要处理的数据，等待handler异步处理
-        requestHandlers.get(workerId).processData(channel, readBuffer.array(), readCount);
+        // worker已停止时换一个
+        while (connection.worker == null || !connection.worker.processData(channel, data, count)) {
+            // 简单的负载均衡
+            RequestHandler[] handlers = requestHandlers;
+            if (handlers.length == 0) {
+                return;
+            }
+            int workerId = (channel.hashCode() & Integer.MAX_VALUE) % handlers.length;
+            if (logger.isDebugEnabled())
+                logger.debug("{} - {} - {}", selector.keys().size(), workerId, channel);
+            connection.worker = handlers[workerId];
+        }
+    }
+
+    /**
+     * 解密netIn中的密文交给worker，同时推进握手
+     */
+    private void unwrap(SelectionKey key, TlsSession tls) throws IOException {
+        if (tls.netIn == null) {
+            return;
+        }
+        tls.netIn.flip();
+        try {
+            while (!tls.tasksRunning) {
+                tlsAppBuffer.clear();
+                SSLEngineResult result = tls.engine.unwrap(tls.netIn, tlsAppBuffer);
+                if (tlsAppBuffer.position() > 0)
+                    dispatch(key, tlsAppBuffer.array(), tlsAppBuffer.position());
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    close(key);
+                    return;
+                }
+                HandshakeStatus status = handshakeStep(key, tls, result.getHandshakeStatus());
+                if (status == HandshakeStatus.NEED_TASK || status == HandshakeStatus.NEED_WRAP
+                        || result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                        || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+                    break;
+                }
+            }
+        } finally {
+            if (tls.netIn != null) {
+                tls.netIn.compact();
+                if (tls.netIn.position() == 0) {
+                    tlsContext.releaseBuffer(tls.netIn);
+                    tls.netIn = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * 处理wrap/unwrap后的握手状态：委托任务交给握手线程池，需要wrap时关注写事件
+     */
+    private HandshakeStatus handshakeStep(SelectionKey key, TlsSession tls, HandshakeStatus status) {
+        switch (status) {
+            case NEED_TASK:
+                tls.tasksRunning = true;
+                // 任务完成前不读不写
+                key.interestOps(0);
+                SocketChannel channel = (SocketChannel) key.channel();
+                tlsContext.runDelegatedTasks(tls.engine, () -> {
+                    changeRequests.offer(new ChangeRequest(channel, ChangeRequest.TLS_TASKS_DONE, 0));
+                    selector.wakeup();
+                });
+                break;
+            case NEED_WRAP:
+                key.interestOps(withRead(key, SelectionKey.OP_WRITE));
+                break;
+            case FINISHED:
+                tlsContext.handshakeFinished(tls);
+                break;
+            default:
+        }
+        return status;
+    }
+
+    /**
+     * 握手任务完成，继续处理已缓冲的密文和待写出的握手数据
+     */
+    private void resumeHandshake(SelectionKey key) {
+        if (key == null || !key.isValid() || !(key.attachment() instanceof Connection)) {
+            return;
+        }
+        TlsSession tls = ((Connection) key.attachment()).tls;
+        tls.tasksRunning = false;
+        try {
+            key.interestOps(withRead(key, SelectionKey.OP_WRITE));
+            handshakeStep(key, tls, tls.engine.getHandshakeStatus());
+            unwrap(key, tls);
+        } catch (SSLException e) {
+            tlsContext.handshakeFailed();
+            close(key);
+            if (logger.isDebugEnabled())
+                logger.debug("tls error {}: {}", key.channel(), e.getMessage());
+        } catch (IOException e) {
+            close(key);
+            logger.error("closed {}: {}", key.channel(), Utils.errorStack(e));
+        }
+    }
+
+    /**
+     * TLS写：先写完上次剩余的密文，再wrap握手数据或待发送数据。
+     * 待发送的缓冲区（包括缓存中的只读直接缓冲区）直接聚合加密到密文缓冲区，不做中间拷贝。
+     */
+    private void writeTls(SelectionKey key, TlsSession tls, ConcurrentLinkedQueue<ByteBuffer> queue) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        for (; ; ) {
+            if (tls.netOut != null) {
+                channel.write(tls.netOut);
+                if (tls.netOut.hasRemaining()) {
+                    key.interestOps(withRead(key, SelectionKey.OP_WRITE));
+                    return;
+                }
+                tlsContext.releaseBuffer(tls.netOut);
+                tls.netOut = null;
+            }
+            if (tls.tasksRunning) {
+                key.interestOps(0);
+                return;
+            }
+
+            SSLEngineResult result;
+            HandshakeStatus status = tls.engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_WRAP) {
+                tls.netOut = tlsContext.acquireBuffer();
+                result = tls.engine.wrap(EMPTY, tls.netOut);
+            } else if (status == HandshakeStatus.NOT_HANDSHAKING && queue != null && !queue.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buf : queue) {
+                    tlsWrapSources[count++] = buf;
+                    if (count == tlsWrapSources.length)
+                        break;
+                }
+                tls.netOut = tlsContext.acquireBuffer();
+                result = tls.engine.wrap(tlsWrapSources, 0, count, tls.netOut);
+                Arrays.fill(tlsWrapSources, 0, count, null);
+                connection.outstanding.addAndGet(-result.bytesConsumed());
+                // 头部已经全部加密的出队
+                while (!queue.isEmpty() && !queue.peek().hasRemaining()) {
+                    queue.poll();
+                }
+            } else {
+                break;
+            }
+            tls.netOut.flip();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                close(key);
+                return;
+            }
+            handshakeStep(key, tls, result.getHandshakeStatus());
+        }
+
+        key.interestOps(withRead(key, 0));
+        // 握手过程中可能已经缓冲了对方的下一段数据（如紧跟Finished的请求）
+        if (tls.netIn != null)
+            unwrap(key, tls);
     }
 
     /**
@@ -160,39 +747,77 @@ public class NioHttpServer implements Runnable {
             queue = pendingSentMap.get(channel);
         }
 
+        Connection connection = (Connection) key.attachment();
+        connection.lastActive = System.nanoTime();
+        TlsSession tls = connection.tls;
+        if (tls != null) {
+            writeTls(key, tls, queue);
+            return;
+        }
+
+        if (queue == null) {
+            key.interestOps(withRead(key, 0));
+            return;
+        }
+
         // 单个NioHttpServer实例对应一个线程，保证了队列先peek再poll是针对同一个节点的
         // ConcurrentLinkedQueue保证了队列的出入安全
+        long written = 0;
         while (!queue.isEmpty()) {
             ByteBuffer buf = queue.peek(); // 返回头部
-            channel.write(buf);
+            written += channel.write(buf);
             // have more to send
             if (buf.remaining() > 0) {
                 break;
             }
             queue.poll(); // 头部出队
         }
+        connection.outstanding.addAndGet(-written);
 
         if (queue.isEmpty()) {
             // 该channel暂时没有数据可写时，取消关联写事件
-            key.interestOps(SelectionKey.OP_READ);
+            key.interestOps(withRead(key, 0));
+        } else {
+            // 写出一部分后低于上限则恢复读取
+            key.interestOps(withRead(key, SelectionKey.OP_WRITE));
         }
     }
 
     public void send(SocketChannel channel, byte[] data) {
-        synchronized (changeRequests) {
-            // 添加写事件请求
-            changeRequests.add(new ChangeRequest(channel, ChangeRequest.CHANGE_OPS, SelectionKey.OP_WRITE));
-            ConcurrentLinkedQueue<ByteBuffer> queue;
+        send(channel, ByteBuffer.wrap(data));
+    }
 
-            // 缩小锁粒度
-            // 由于这个方法被worker线程调用，所以需要对map加锁访问
-            // 上面write方法里也要加锁
-            synchronized (pendingSentMap) {
-                queue = pendingSentMap.computeIfAbsent(channel, k -> new ConcurrentLinkedQueue<>());
-            }
+    /**
+     * 发送缓冲区中剩余的数据，调用方需保证缓冲区不再被修改（共享的缓冲区请先duplicate）
+     */
+    public void send(SocketChannel channel, ByteBuffer data) {
+        SelectionKey key = channel.keyFor(selector);
+        if (key == null || !channel.isOpen()) {
+            // 连接已关闭
+            return;
+        }
+        Object attachment = key.attachment();
+        if (attachment instanceof Connection)
+            ((Connection) attachment).outstanding.addAndGet(data.remaining());
 
-            queue.offer(ByteBuffer.wrap(data)); // queue只会尾部入队
+        ConcurrentLinkedQueue<ByteBuffer> queue;
+
+        // 缩小锁粒度
+        // 由于这个方法被worker线程调用，所以需要对map加锁访问
+        // 上面write方法里也要加锁
+        synchronized (pendingSentMap) {
+            queue = pendingSentMap.computeIfAbsent(channel, k -> new ConcurrentLinkedQueue<>());
+            // close()先关闭通道再加锁移除队列，这里加锁后再检查一次，避免把已关闭连接的队列放回去
+            if (!channel.isOpen()) {
+                pendingSentMap.remove(channel);
+                return;
+            }
         }
+
+        queue.offer(data); // queue只会尾部入队
+
+        // 先入队数据再添加写事件请求，选择器线程处理到该请求时数据一定已经可见
+        changeRequests.offer(new ChangeRequest(channel, ChangeRequest.CHANGE_OPS, SelectionKey.OP_WRITE));
         selector.wakeup();
     }
 }
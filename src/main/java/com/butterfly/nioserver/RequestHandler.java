@@ -2,56 +2,115 @@ package com.butterfly.nioserver;
 
 import com.butterfly.nioserver.ButterflySoftCache.CacheEntry;
 import com.butterfly.nioserver.RequestHeaderHandler.Verb;
-import com.butterfly.nioserver.util.Utils;
+import com.butterfly.nioserver.ResourceIndex.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.activation.MimetypesFileTypeMap;
-import java.io.File;
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import static com.butterfly.nioserver.HttpResponseHeaderBuilder.*;
 
 public class RequestHandler implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(RequestHandler.class);
 
-    private static final DateFormat FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-
-    static {
-        FORMAT.setTimeZone(TimeZone.getDefault());
-    }
-
     private final ButterflySoftCache cache;
     private final List<RequestSegmentHeader> pendingRequestSegment = new ArrayList<>();
     private final Map<SocketChannel, RequestHeaderHandler> requestMap = new WeakHashMap<>();
     private final NioHttpServer server;
-    private final String serverRoot;
+    private volatile ResourceIndex index;
+    private final AccessLog accessLog;
+    private volatile boolean stopped;
+    // processing a segment taken off the queue
+    private volatile boolean busy;
+    // connections waiting for a cache load, with the segments read meanwhile; responses on a
+    // connection are sent in request order, so its next request waits until the load completes
+    private final Map<SocketChannel, List<RequestSegmentHeader>> parked = new HashMap<>();
+    // connections with a partly received request header, and the one being processed; once
+    // stopped the handler keeps taking data of these connections, so a request never moves
+    // to another handler halfway
+    private final Set<SocketChannel> partial = new HashSet<>();
+    private SocketChannel current;
 
     /**
-     * @param server  {@link NioHttpServer} the server
-     * @param wwwRoot wwwRoot
-     * @param cache   cache implementation
+     * @param server    {@link NioHttpServer} the server
+     * @param index     metadata index of wwwRoot
+     * @param cache     cache implementation
+     * @param accessLog access log, null to disable
      */
-    public RequestHandler(NioHttpServer server, String wwwRoot, ButterflySoftCache cache) {
+    public RequestHandler(NioHttpServer server, ResourceIndex index, ButterflySoftCache cache, AccessLog accessLog) {
         this.cache = cache;
-        this.serverRoot = wwwRoot;
+        this.index = index;
         this.server = server;
+        this.accessLog = accessLog;
     }
 
-    public void processData(SocketChannel client, byte[] data, int count) {
+    /**
+     * @return false if the handler is stopped and the data was not taken, in which case the
+     * client is between requests and may go to another handler
+     */
+    public boolean processData(SocketChannel client, byte[] data, int count) {
 
         byte[] dataCopy = new byte[count];
         System.arraycopy(data, 0, dataCopy, 0, count);
 
         synchronized (pendingRequestSegment) {
+            if (stopped && !owns(client)) {
+                return false;
+            }
             // add data
             pendingRequestSegment.add(new RequestSegmentHeader(client, dataCopy));
             pendingRequestSegment.notify();
         }
+        return true;
+    }
+
+    /**
+     * swap the index, e.g. after the root is reloaded; the cache stays as it is
+     */
+    public void setIndex(ResourceIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * stop after the queued data is processed and the requests in progress are answered
+     */
+    public void stop() {
+        synchronized (pendingRequestSegment) {
+            stopped = true;
+            pendingRequestSegment.notifyAll();
+        }
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * the connection is closed, forget its partly received request
+     */
+    public void release(SocketChannel client) {
+        synchronized (pendingRequestSegment) {
+            if (partial.remove(client)) {
+                pendingRequestSegment.notify();
+            }
+        }
+    }
+
+    /**
+     * @return true if nothing is queued, being processed or waiting for a load
+     */
+    public boolean isIdle() {
+        synchronized (pendingRequestSegment) {
+            return pendingRequestSegment.isEmpty() && !busy && parked.isEmpty();
+        }
     }
 
     @Override
@@ -60,25 +119,37 @@ public class RequestHandler implements Runnable {
         RequestSegmentHeader requestData = null;
         RequestHeaderHandler header = null;
         CacheEntry entry = null;
-        HttpResponseHeaderBuilder builder = new HttpResponseHeaderBuilder();
-        byte[] head = null;
-        byte[] body = null;
-        String file = null;
-        String mime = null;
-        boolean zip = false;
 
         // wait for data
         while (true) {
 
             synchronized (pendingRequestSegment) {
-                while (pendingRequestSegment.isEmpty()) {
-                    try {
-                        pendingRequestSegment.wait();
-                    } catch (InterruptedException ignored) {
+                busy = false;
+                current = null;
+                requestData = null;
+                while (requestData == null) {
+                    if (pendingRequestSegment.isEmpty()) {
+                        if (stopped && parked.isEmpty() && partial.isEmpty()) {
+                            return;
+                        }
+                        try {
+                            pendingRequestSegment.wait();
+                        } catch (InterruptedException ignored) {
+                        }
+                        continue;
+                    }
+                    requestData = pendingRequestSegment.remove(0);
+                    List<RequestSegmentHeader> waiting = parked.get(requestData.client);
+                    if (waiting != null) {
+                        // hold it back until the pending response is sent
+                        waiting.add(requestData);
+                        requestData = null;
                     }
                 }
-                requestData = pendingRequestSegment.remove(0);
+                current = requestData.client;
+                busy = true;
             }
+            requestData.started = System.nanoTime();
 
             header = requestMap.get(requestData.client);
             if (header == null) {
@@ -86,87 +157,181 @@ public class RequestHandler implements Runnable {
                 requestMap.put(requestData.client, header);
             }
             try {
-                if (header.appendSegment(requestData.data)) {
-                    file = serverRoot + header.getResouce();
-                    File currentFile = new File(file);
-                    mime = new MimetypesFileTypeMap().getContentType(currentFile);
-                    logger.info(currentFile + "\t" + mime);
-                    String acceptEncoding = header.getHeader(ACCEPT_ENCODING);
+                boolean complete = header.appendSegment(requestData.data);
+                synchronized (pendingRequestSegment) {
+                    if (header.isPending())
+                        partial.add(requestData.client);
+                    else
+                        partial.remove(requestData.client);
+                }
+                if (complete) {
+                    final RequestSegmentHeader request = requestData;
+                    final String resource = header.getResouce();
+                    final Verb verb = header.getVerb();
+                    if (!server.acquire(request.client)) {
+                        error(request, verb, resource, TOO_MANY_REQUESTS_429, 429);
+                        continue;
+                    }
+                    // resolve against the index, no file system call
+                    final String uri = ResourceIndex.normalize(resource);
+                    if (uri == null) {
+                        error(request, verb, resource, FORBIDDEN_403, 403);
+                        continue;
+                    }
+                    final Resource target = index.get(uri);
+                    if (target == null) {
+                        error(request, verb, resource, NOT_FOUND_404, 404);
+                        continue;
+                    }
+                    final String mime = target.mime;
+                    if (logger.isDebugEnabled())
+                        logger.debug("{}\t{}", target.file, mime);
                     // gzip text
-                    zip = mime.contains("text") && acceptEncoding != null && acceptEncoding.contains("gzip");
-                    if (zip) {
-                        entry = cache.get(file + GZIP);
+                    final boolean zip = ResourceLoader.shouldZip(mime, header.getHeader(ACCEPT_ENCODING));
+                    final String file = ResourceLoader.cacheKey(target.path, zip);
+                    entry = cache.get(file);
+                    if (entry != null && entry.lastModified != target.lastModified) {
+                        // loaded from an older version of the file, e.g. the file changed while it
+                        // was loading and the stale body was put after the index invalidated it
+                        cache.remove(file);
+                        entry = null;
+                    }
+
+                    if (entry != null) {
+                        // cache is hit
+                        if (logger.isDebugEnabled())
+                            logger.debug("cache is hit {}", file);
+                        respond(request, verb, resource, entry, true);
                     } else {
-                        entry = cache.get(file);
+                        // miss the cache
+                        if (logger.isDebugEnabled())
+                            logger.debug("miss the cache {}", file);
+
+                        // concurrent misses of the same file share one load; the callback runs on
+                        // the worker that finishes the load, so this worker never blocks on it.
+                        // only this connection is parked until then
+                        park(request.client);
+                        cache.load(file, () -> ResourceLoader.load(target, zip))
+                                .whenComplete((loaded, e) -> {
+                                    try {
+                                        if (e == null) {
+                                            respond(request, verb, resource, loaded, false);
+                                        } else if (e instanceof IOException) {
+                                            // removed after it was indexed
+                                            error(request, verb, resource, NOT_FOUND_404, 404);
+                                        } else {
+                                            serverError(request, verb, resource, e);
+                                        }
+                                    } finally {
+                                        resume(request.client);
+                                    }
+                                });
                     }
+                }
+            } catch (Exception e) {
+                serverError(requestData, header.getVerb(), null, e);
+            }
+        }
+    }
 
-                    // miss the cache
-                    if (entry == null) {
-                        builder.clear(); // get ready for next request;
+    /**
+     * called with the lock held
+     */
+    private boolean owns(SocketChannel client) {
+        if (client == current || partial.contains(client) || parked.containsKey(client)) {
+            return true;
+        }
+        for (RequestSegmentHeader segment : pendingRequestSegment) {
+            if (segment.client == client) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                        logger.info("miss the cache " + file);
+    private void park(SocketChannel client) {
+        synchronized (pendingRequestSegment) {
+            parked.put(client, new ArrayList<>());
+        }
+    }
 
-                        // always keep alive
-                        builder.addHeader(CONNECTION, KEEP_ALIVE);
-                        builder.addHeader(CONTENT_TYPE, mime);
+    /**
+     * put the segments held back while the connection was parked in front of the queue
+     */
+    private void resume(SocketChannel client) {
+        synchronized (pendingRequestSegment) {
+            List<RequestSegmentHeader> waiting = parked.remove(client);
+            if (waiting != null && !waiting.isEmpty()) {
+                pendingRequestSegment.addAll(0, waiting);
+            }
+            pendingRequestSegment.notify();
+        }
+    }
 
-                        // response body byte, exception throws here
-                        body = Utils.file2ByteArray(currentFile, zip);
-                        builder.addHeader(CONTENT_LENGTH, body.length);
-                        if (zip) {
-                            // add zip header
-                            builder.addHeader(CONTENT_ENCODING, GZIP);
-                        }
+    /**
+     * data is prepared, send out to the client
+     */
+    private void respond(RequestSegmentHeader request, Verb verb, String resource, CacheEntry entry, boolean hit) {
+        long bytes = entry.header.length;
+        if (entry.response != null && verb == Verb.GET) {
+            // pre-rendered small asset, no per-request assembly
+            server.send(request.client, entry.response.duplicate());
+            bytes = entry.response.capacity();
+        } else {
+            server.send(request.client, entry.header);
+            if (entry.body != null && verb == Verb.GET) {
+                server.send(request.client, entry.body);
+                bytes += entry.body.length;
+            }
+        }
+        log(request, verb, resource, entry.status, bytes, hit);
+    }
 
-                        // last modified header
-                        Date lastModified = new Date(currentFile.lastModified());
-                        builder.addHeader(LAST_MODIFIED, FORMAT.format(lastModified));
+    /**
+     * empty response with the given status
+     */
+    private void error(RequestSegmentHeader request, Verb verb, String resource, String status, int code) {
+        HttpResponseHeaderBuilder builder = new HttpResponseHeaderBuilder();
+        builder.addHeader(CONNECTION, KEEP_ALIVE);
+        builder.addHeader(CONTENT_LENGTH, 0);
+        builder.setStatus(status);
+        byte[] head = builder.getHeader();
+        server.send(request.client, head);
+        log(request, verb, resource, code, head.length, false);
+    }
 
-                        // response header byte
-                        head = builder.getHeader();
-                        // add to the cache
-                        if (zip)
-                            file = file + GZIP;
-                        cache.put(file, head, body);
-                    } else {
-                        // cache is hit
-                        if (logger.isDebugEnabled())
-                            logger.debug("cache is hit" + file);
-                        body = entry.body;
-                        head = entry.header;
-                    }
-                    // data is prepared, send out to the client
-                    server.send(requestData.client, head);
-                    if (body != null && header.getVerb() == Verb.GET)
-                        server.send(requestData.client, body);
-                }
-            } catch (IOException e) {
-                builder.addHeader(CONTENT_LENGTH, 0);
-                builder.setStatus(NOT_FOUND_404);
-                head = builder.getHeader();
-                server.send(requestData.client, head);
-                // cache 404 if case client make a mistake again
-                cache.put(file, head, body);
-                logger.error("404 error", e);
+    /**
+     * any other, it's a 505 error
+     */
+    private void serverError(RequestSegmentHeader request, Verb verb, String resource, Throwable e) {
+        HttpResponseHeaderBuilder builder = new HttpResponseHeaderBuilder();
+        builder.addHeader(CONTENT_LENGTH, 0);
+        builder.setStatus(SERVER_ERROR_500);
+        byte[] head = builder.getHeader();
+        server.send(request.client, head);
+        log(request, verb, resource, 500, head.length, false);
+        logger.error("505 error", e);
+    }
 
-            } catch (Exception e) {
-                // any other, it's a 505 error
-                builder.addHeader(CONTENT_LENGTH, 0);
-                builder.setStatus(SERVER_ERROR_500);
-                head = builder.getHeader();
-                server.send(requestData.client, head);
-                logger.error("505 error", e);
-            }
+    private void log(RequestSegmentHeader request, Verb verb, String resource, int status, long bytes, boolean hit) {
+        if (accessLog != null) {
+            long now = System.nanoTime();
+            accessLog.log(request.client, verb == null ? "-" : verb.name(), resource == null ? "-" : resource,
+                    status, bytes, hit, request.started - request.received, now - request.started);
         }
     }
 
     private static class RequestSegmentHeader {
         SocketChannel client;
         byte[] data;
+        // System.nanoTime() when read off the socket and when picked up by the worker
+        long received;
+        long started;
 
         public RequestSegmentHeader(SocketChannel client, byte[] data) {
             this.client = client;
             this.data = data;
+            this.received = System.nanoTime();
         }
     }
 }
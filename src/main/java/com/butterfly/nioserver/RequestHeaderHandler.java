@@ -164,6 +164,13 @@ public class RequestHeaderHandler {
         begin = false;
     }
 
+    /**
+     * @return true if a request has begun but its header is not complete yet
+     */
+    public boolean isPending() {
+        return begin;
+    }
+
     public String getHeader(String key) {
         return headerMap.get(key);
     }
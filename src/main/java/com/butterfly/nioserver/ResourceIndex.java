@@ -0,0 +1,337 @@
+package com.butterfly.nioserver;
+
+import com.butterfly.nioserver.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * wwwRoot的元数据索引
+ * <p>
+ * 启动时用fork-join并行遍历目录，记录每个文件的大小、修改时间、mime和ETag，
+ * 之后由{@link WatchService}增量更新，并让被修改或删除文件的缓存失效。
+ * 请求解析只需规范化路径后查一次哈希表，不产生文件系统调用，不存在的文件直接返回404。
+ */
+public class ResourceIndex implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResourceIndex.class);
+
+    public static final class Resource {
+        public final String uri;
+        public final File file;
+        // 缓存key使用的路径
+        public final String path;
+        public final long size;
+        public final long lastModified;
+        public final String mime;
+        public final String etag;
+
+        Resource(String uri, Path path, BasicFileAttributes attributes) {
+            this.uri = uri;
+            this.file = path.toFile();
+            this.path = file.getPath();
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.mime = ResourceLoader.mimeOf(file);
+            this.etag = etag(size, lastModified);
+        }
+    }
+
+    private final Path root;
+    private final ButterflySoftCache cache;
+    private final ForkJoinPool pool;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    private volatile Map<String, Resource> resources = new ConcurrentHashMap<>();
+
+    /**
+     * @param root        wwwRoot
+     * @param cache       entries of changed files are removed from it, may be null
+     * @param parallelism fork-join pool size used for walking
+     * @param watch       keep the index fresh with a {@link WatchService}, see {@link #run()}
+     */
+    public ResourceIndex(String root, ButterflySoftCache cache, int parallelism, boolean watch) throws IOException {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+        this.cache = cache;
+        this.pool = new ForkJoinPool(parallelism);
+        this.watcher = watch ? this.root.getFileSystem().newWatchService() : null;
+        long begin = System.currentTimeMillis();
+        resources = walk();
+        logger.info("indexed {} files under {} in {}ms", resources.size(), this.root,
+                System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * ETag由文件大小和修改时间组成
+     */
+    public static String etag(long size, long lastModified) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * 规范化请求路径：去掉查询串，解码，折叠.和..，以/结尾时补index.html
+     *
+     * @return normalized uri, or null if it is malformed or escapes the root
+     */
+    public static String normalize(String uri) {
+        int end = uri.length();
+        for (int i = 0; i < end; ++i) {
+            char c = uri.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+            }
+        }
+        if (end != uri.length()) {
+            uri = uri.substring(0, end);
+        }
+        if (uri.indexOf('%') >= 0) {
+            try {
+                // 路径中的+不是空格
+                uri = URLDecoder.decode(uri.replace("+", "%2B"), "UTF-8");
+            } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+        if (uri.isEmpty() || uri.charAt(0) != '/' || uri.indexOf('\0') >= 0 || uri.indexOf('\\') >= 0) {
+            return null;
+        }
+
+        if (uri.contains("/.") || uri.contains("//")) {
+            Deque<String> segments = new ArrayDeque<>();
+            for (String segment : uri.split("/")) {
+                if (segment.isEmpty() || segment.equals(".")) {
+                    continue;
+                }
+                if (segment.equals("..")) {
+                    if (segments.isEmpty()) {
+                        // 越过了根目录
+                        return null;
+                    }
+                    segments.removeLast();
+                } else {
+                    segments.addLast(segment);
+                }
+            }
+            StringBuilder sb = new StringBuilder(uri.length());
+            for (String segment : segments) {
+                sb.append('/').append(segment);
+            }
+            if (uri.endsWith("/") || uri.endsWith("/.") || uri.endsWith("/..") || sb.length() == 0) {
+                sb.append('/');
+            }
+            uri = sb.toString();
+        }
+
+        if (uri.endsWith("/")) {
+            uri = uri + "index.html";
+        }
+        return uri;
+    }
+
+    /**
+     * @param uri normalized uri, see {@link #normalize(String)}
+     * @return the resource, or null if there is no such file
+     */
+    public Resource get(String uri) {
+        return resources.get(uri);
+    }
+
+    /**
+     * @param path file path, as in {@link Resource#path}
+     * @return the resource, or null if the file is not under the root or not indexed
+     */
+    public Resource getByPath(String path) {
+        Path file = Paths.get(path).toAbsolutePath().normalize();
+        return file.startsWith(root) ? resources.get(uriOf(file)) : null;
+    }
+
+    public String getRoot() {
+        return root.toString();
+    }
+
+    public int size() {
+        return resources.size();
+    }
+
+    /**
+     * 监听线程，处理文件变化事件；未开启监听时直接返回
+     */
+    @Override
+    public void run() {
+        if (watcher == null) {
+            return;
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+            Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    if (event.kind() == OVERFLOW) {
+                        // 丢失了事件，重建索引
+                        rebuild();
+                    } else if (dir != null) {
+                        Path child = dir.resolve((Path) event.context());
+                        if (event.kind() == ENTRY_DELETE) {
+                            remove(child);
+                        } else {
+                            update(child);
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.warn("failed to update index: {}", Utils.errorStack(e));
+                }
+            }
+            if (!key.reset()) {
+                watchedDirs.remove(key);
+            }
+        }
+        Utils.closeQuietly(watcher);
+    }
+
+    /**
+     * 停止监听，监听线程随之退出
+     */
+    public void close() {
+        Utils.closeQuietly(watcher);
+        pool.shutdown();
+    }
+
+    private Map<String, Resource> walk() {
+        Map<String, Resource> result = new ConcurrentHashMap<>();
+        pool.invoke(new Walker(root, result));
+        return result;
+    }
+
+    private void rebuild() {
+        Map<String, Resource> fresh = walk();
+        Map<String, Resource> old = resources;
+        resources = fresh;
+        for (Resource resource : old.values()) {
+            Resource current = fresh.get(resource.uri);
+            if (current == null || current.lastModified != resource.lastModified || current.size != resource.size) {
+                invalidate(resource);
+            }
+        }
+    }
+
+    private void update(Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            remove(path);
+            return;
+        }
+        if (attributes.isDirectory()) {
+            // 新建或移入的目录
+            pool.invoke(new Walker(path, resources));
+        } else if (attributes.isRegularFile()) {
+            String uri = uriOf(path);
+            Resource old = resources.put(uri, new Resource(uri, path, attributes));
+            if (old != null) {
+                invalidate(old);
+            }
+        }
+    }
+
+    /**
+     * 删除文件或整个目录
+     */
+    private void remove(Path path) {
+        String uri = uriOf(path);
+        Resource old = resources.remove(uri);
+        if (old != null) {
+            invalidate(old);
+            return;
+        }
+        String prefix = uri + "/";
+        resources.values().removeIf(resource -> {
+            if (resource.uri.startsWith(prefix)) {
+                invalidate(resource);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void invalidate(Resource resource) {
+        if (cache != null) {
+            cache.remove(ResourceLoader.cacheKey(resource.path, false));
+            cache.remove(ResourceLoader.cacheKey(resource.path, true));
+        }
+    }
+
+    private String uriOf(Path path) {
+        String relative = root.relativize(path).toString();
+        if (File.separatorChar != '/') {
+            relative = relative.replace(File.separatorChar, '/');
+        }
+        return "/" + relative;
+    }
+
+    /**
+     * 并行遍历一个目录，子目录拆成子任务
+     */
+    private final class Walker extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final Map<String, Resource> result;
+
+        Walker(Path dir, Map<String, Resource> result) {
+            this.dir = dir;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            List<Walker> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                if (watcher != null) {
+                    watchedDirs.put(dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                }
+                for (Path path : stream) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        // 符号链接只跟随到文件，不进入链接的目录，避免环
+                        if (attributes.isSymbolicLink())
+                            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                        else if (attributes.isDirectory())
+                            children.add(new Walker(path, result));
+                    } catch (IOException e) {
+                        // 悬空的符号链接等
+                        continue;
+                    }
+                    if (attributes.isRegularFile()) {
+                        String uri = uriOf(path);
+                        result.put(uri, new Resource(uri, path, attributes));
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("failed to index {}: {}", dir, e.getMessage());
+            }
+            invokeAll(children);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.butterfly.nioserver;
+
+import com.butterfly.nioserver.ButterflySoftCache.CacheEntry;
+import com.butterfly.nioserver.ResourceIndex.Resource;
+import com.butterfly.nioserver.util.Utils;
+
+import javax.activation.MimetypesFileTypeMap;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static com.butterfly.nioserver.HttpResponseHeaderBuilder.*;
+
+/**
+ * 从磁盘加载静态资源并构造可直接缓存的响应
+ * <p>
+ * worker线程和缓存预热共用，保证两边生成的响应头完全一致
+ */
+public final class ResourceLoader {
+
+    // 响应总长度不超过该值时预渲染为单个直接缓冲区，0表示关闭
+    private static final int INLINE_THRESHOLD = Integer.getInteger("nioserver.cache.inlineThreshold", 4096);
+
+    // MimetypesFileTypeMap会解析mime.types，只初始化一次，getContentType本身是同步的
+    private static final MimetypesFileTypeMap MIME_TYPES = new MimetypesFileTypeMap();
+
+    // SimpleDateFormat非线程安全，每个线程一份
+    private static final ThreadLocal<DateFormat> FORMAT = ThreadLocal.withInitial(() -> {
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        format.setTimeZone(TimeZone.getDefault());
+        return format;
+    });
+
+    private ResourceLoader() {
+    }
+
+    public static String mimeOf(File file) {
+        return MIME_TYPES.getContentType(file);
+    }
+
+    /**
+     * 只压缩文本类型，且客户端需声明支持gzip
+     */
+    public static boolean shouldZip(String mime, String acceptEncoding) {
+        return canZip(mime) && acceptEncoding != null && acceptEncoding.contains(GZIP);
+    }
+
+    public static boolean canZip(String mime) {
+        return mime.contains("text");
+    }
+
+    /**
+     * 缓存key，gzip变体在文件路径后追加gzip
+     */
+    public static String cacheKey(String file, boolean zip) {
+        return zip ? file + GZIP : file;
+    }
+
+    /**
+     * 读取文件并构造响应头，失败时抛出IOException（由调用方返回404）
+     * <p>
+     * 类型、修改时间和ETag取自索引，不再访问文件元数据；文件之后的变化由索引让缓存失效
+     */
+    public static CacheEntry load(Resource resource, boolean zip) throws IOException {
+        String mime = resource.mime;
+        long lastModified = resource.lastModified;
+        byte[] body = Utils.file2ByteArray(resource.file, zip);
+
+        HttpResponseHeaderBuilder builder = new HttpResponseHeaderBuilder();
+        // always keep alive
+        builder.addHeader(CONNECTION, KEEP_ALIVE);
+        builder.addHeader(CONTENT_TYPE, mime);
+        builder.addHeader(CONTENT_LENGTH, body.length);
+        if (zip) {
+            builder.addHeader(CONTENT_ENCODING, GZIP);
+        }
+        builder.addHeader(LAST_MODIFIED, FORMAT.get().format(new Date(lastModified)));
+        String etag = resource.etag;
+        if (zip) {
+            // gzip变体内容不同，ETag也要区分
+            etag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+        }
+        builder.addHeader(ETAG, etag);
+
+        return newEntry(builder.getHeader(), body, resource.path, zip, lastModified);
+    }
+
+    /**
+     * 构造缓存条目，小文件把响应头和响应体预渲染到同一个只读直接缓冲区，一次write即可发出
+     */
+    public static CacheEntry newEntry(byte[] header, byte[] body, String file, boolean zip, long lastModified) {
+        CacheEntry entry = new CacheEntry(header, body, file, zip, lastModified);
+        int length = header.length + body.length;
+        if (length <= INLINE_THRESHOLD) {
+            ByteBuffer response = ByteBuffer.allocateDirect(length);
+            response.put(header).put(body).flip();
+            entry.response = response.asReadOnlyBuffer();
+        }
+        return entry;
+    }
+}
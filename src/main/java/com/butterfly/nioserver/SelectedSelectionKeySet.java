@@ -0,0 +1,111 @@
+package com.butterfly.nioserver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 基于数组的selectedKeys集合
+ * <p>
+ * JDK默认用HashSet保存就绪的SelectionKey，每轮select都要哈希插入并分配迭代器。
+ * 这里通过反射把Selector内部的集合替换成数组，选择器线程按下标遍历后直接{@link #reset()}，不产生垃圾。
+ * 只能由选择器线程访问。
+ */
+final class SelectedSelectionKeySet extends AbstractSet<SelectionKey> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SelectedSelectionKeySet.class);
+
+    SelectionKey[] keys = new SelectionKey[1024];
+    int size;
+
+    /**
+     * 替换selector内部的selectedKeys，JDK不允许反射访问（JDK 9+需要
+     * --add-opens java.base/sun.nio.ch=ALL-UNNAMED）时返回null，调用方回退到迭代器
+     */
+    static SelectedSelectionKeySet install(Selector selector) {
+        try {
+            Class<?> impl = Class.forName("sun.nio.ch.SelectorImpl", false, ClassLoader.getSystemClassLoader());
+            if (!impl.isInstance(selector)) {
+                return null;
+            }
+            Field selectedKeys = impl.getDeclaredField("selectedKeys");
+            Field publicSelectedKeys = impl.getDeclaredField("publicSelectedKeys");
+            selectedKeys.setAccessible(true);
+            publicSelectedKeys.setAccessible(true);
+
+            SelectedSelectionKeySet set = new SelectedSelectionKeySet();
+            selectedKeys.set(selector, set);
+            publicSelectedKeys.set(selector, set);
+            return set;
+        } catch (Exception e) {
+            if (logger.isDebugEnabled())
+                logger.debug("array backed selected keys not available: {}", e.toString());
+            return null;
+        }
+    }
+
+    @Override
+    public boolean add(SelectionKey key) {
+        if (key == null) {
+            return false;
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+        }
+        keys[size++] = key;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return false;
+    }
+
+    /**
+     * 总是返回false，由selector负责避免重复添加
+     */
+    @Override
+    public boolean contains(Object o) {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<SelectionKey> iterator() {
+        return new Iterator<SelectionKey>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public SelectionKey next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return keys[index++];
+            }
+        };
+    }
+
+    /**
+     * 清空，释放对key的引用
+     */
+    void reset() {
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+    }
+}
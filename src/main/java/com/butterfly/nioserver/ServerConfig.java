@@ -0,0 +1,69 @@
+package com.butterfly.nioserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * 可以在运行中重新加载的配置：端口、根目录和worker数
+ * <p>
+ * 命令行参数[port] [www-root]作为默认值，nioserver.config指定的properties文件中的
+ * port、root、workers覆盖默认值，文件修改后由{@link ServerLifecycle}重新加载
+ */
+public final class ServerConfig {
+
+    public final int port;
+    public final String root;
+    public final int workers;
+
+    public ServerConfig(int port, String root, int workers) {
+        this.port = port;
+        this.root = root;
+        this.workers = workers;
+    }
+
+    /**
+     * 从命令行参数读取
+     */
+    public static ServerConfig fromArgs(String[] args) throws IOException {
+        // 端口号
+        int port = 8080;
+        if (args.length > 0)
+            port = Integer.parseInt(args[0]);
+
+        // 文件访问根目录
+        String root = new File(".").getCanonicalPath();
+        if (args.length > 1)
+            root = args[1];
+
+        // 默认按cpu核心数启动worker
+        return new ServerConfig(port, root, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 用配置文件覆盖默认值，文件为null时返回默认值
+     */
+    public static ServerConfig load(ServerConfig defaults, File file) throws IOException {
+        if (file == null) {
+            return defaults;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        int port = Integer.parseInt(properties.getProperty("port", String.valueOf(defaults.port)).trim());
+        String root = properties.getProperty("root", defaults.root).trim();
+        int workers = Integer.parseInt(properties.getProperty("workers", String.valueOf(defaults.workers)).trim());
+        if (port <= 0 || port > 65535 || workers <= 0) {
+            throw new IllegalArgumentException("invalid config: port=" + port + ", workers=" + workers);
+        }
+        return new ServerConfig(port, root, workers);
+    }
+
+    @Override
+    public String toString() {
+        return "port = " + port + ", root = " + root + ", workers = " + workers;
+    }
+}
@@ -0,0 +1,321 @@
+package com.butterfly.nioserver;
+
+import com.butterfly.nioserver.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务的启动、运行中重新加载配置和优雅停机
+ * <p>
+ * 配置文件（nioserver.config）修改后：
+ * <ul>
+ * <li>workers 增减worker线程，被移除的worker处理完连接上进行中的请求后退出</li>
+ * <li>root 重建文件索引后切换，缓存保持预热，旧目录的条目自然淘汰</li>
+ * <li>port 绑定新端口后关闭旧端口，已建立的连接不受影响</li>
+ * </ul>
+ * 停机顺序：停止accept并排空连接，停止worker，写缓存快照，写完访问日志。
+ */
+public final class ServerLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerLifecycle.class);
+
+    private final ServerConfig defaults;
+    private final File configFile;
+    private final int cpu = Runtime.getRuntime().availableProcessors();
+
+    private final ButterflySoftCache cache = new ButterflySoftCache();
+    // 定期写快照、检查配置文件，守护线程，不阻止进程退出
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "nio-server-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ServerConfig config;
+    private long configModified;
+    private ResourceIndex index;
+    private NioHttpServer server;
+    private Thread selectorThread;
+    private AccessLog accessLog;
+    private Thread accessLogWriter;
+    private CacheWarmer warmer;
+    private File snapshotFile;
+    private int snapshotLimit;
+
+    private final List<RequestHandler> handlers = new ArrayList<>();
+    private final List<Thread> workerThreads = new ArrayList<>();
+    private int workerSeq;
+    private boolean stopped;
+
+    /**
+     * @param defaults   命令行参数给出的配置
+     * @param configFile 配置文件，可为null
+     */
+    public ServerLifecycle(ServerConfig defaults, File configFile) {
+        this.defaults = defaults;
+        this.configFile = configFile;
+    }
+
+    public synchronized void start() throws IOException {
+        config = ServerConfig.load(defaults, configFile);
+        configModified = configFile == null ? 0L : configFile.lastModified();
+        if (logger.isDebugEnabled())
+            logger.debug("{}", config);
+
+        // 文件元数据索引，请求解析不再访问文件系统
+        index = newIndex(config.root);
+
+        // 在绑定端口前预热缓存，避免重启后的首批请求全部读盘
+        warmUp();
+
+        // 服务实例
+        // 配置了密钥库时启用TLS
+        TlsContext tls = TlsContext.fromSystemProperties();
+        server = new NioHttpServer(null, config.port, tls);
+
+        // 访问日志
+        accessLog = accessLog();
+
+        // 默认根据cpu核心数来启动worker线程
+        resize(config.workers);
+
+        // 启动一个选择器/管理线程
+        selectorThread = new Thread(server, "nio-server-selector");
+        selectorThread.start();
+
+        if (configFile != null) {
+            int interval = Integer.getInteger("nioserver.config.reloadInterval", 5);
+            scheduler.scheduleWithFixedDelay(this::checkConfig, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 重新加载配置文件，配置有误时保持当前配置
+     */
+    public synchronized void reload() {
+        if (stopped) {
+            return;
+        }
+        ServerConfig next;
+        try {
+            next = ServerConfig.load(defaults, configFile);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("failed to load config {}, keep the current one: {}", configFile, e.getMessage());
+            return;
+        }
+
+        if (!next.root.equals(config.root)) {
+            try {
+                ResourceIndex fresh = newIndex(next.root);
+                ResourceIndex old = index;
+                index = fresh;
+                for (RequestHandler handler : handlers) {
+                    handler.setIndex(fresh);
+                }
+                old.close();
+                logger.info("root changed to {}", fresh.getRoot());
+            } catch (IOException e) {
+                logger.warn("failed to index {}, keep the current root: {}", next.root, e.getMessage());
+                next = new ServerConfig(next.port, config.root, next.workers);
+            }
+        }
+        if (next.workers != config.workers) {
+            resize(next.workers);
+            logger.info("workers changed to {}", next.workers);
+        }
+        if (next.port != config.port) {
+            server.rebind(null, next.port);
+        }
+        config = next;
+    }
+
+    /**
+     * 优雅停机，可重复调用
+     */
+    public void shutdown() {
+        // 等待正在执行的定期快照和配置检查结束，再写最后一次快照
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            drainAndStop();
+        }
+    }
+
+    private void drainAndStop() {
+        long begin = System.currentTimeMillis();
+
+        // 排空连接
+        boolean drained = false;
+        try {
+            drained = server.shutdown(TimeUnit.SECONDS.toMillis(Integer.getInteger("nioserver.shutdown.timeout", 30)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // 停止worker，队列中的请求处理完后退出
+        for (RequestHandler handler : handlers) {
+            handler.stop();
+        }
+        for (Thread thread : workerThreads) {
+            join(thread, 1000L);
+        }
+
+        // 最后写一次快照
+        writeSnapshot();
+        index.close();
+
+        // 把缓冲区里剩余的访问日志写完
+        if (accessLogWriter != null) {
+            accessLog.stop();
+            join(accessLogWriter, 1000L);
+        }
+        logger.info("shutdown in {}ms{}", System.currentTimeMillis() - begin, drained ? "" : ", drain incomplete");
+    }
+
+    private void checkConfig() {
+        long modified = configFile.lastModified();
+        if (modified != configModified) {
+            configModified = modified;
+            reload();
+        }
+    }
+
+    private ResourceIndex newIndex(String root) throws IOException {
+        ResourceIndex resourceIndex = new ResourceIndex(root, cache, cpu,
+                Boolean.parseBoolean(System.getProperty("nioserver.index.watch", "true")));
+        Thread watcher = new Thread(resourceIndex, "nio-server-index-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        return resourceIndex;
+    }
+
+    /**
+     * 增减worker，先从选择器的分发列表中移除，再停止
+     */
+    private void resize(int workers) {
+        List<RequestHandler> removed = new ArrayList<>();
+        while (handlers.size() > workers) {
+            removed.add(handlers.remove(handlers.size() - 1));
+        }
+        // 被移除的worker可能还在处理进行中的请求，线程保留到退出为止，停机时一并等待
+        workerThreads.removeIf(thread -> !thread.isAlive());
+        int from = handlers.size();
+        while (handlers.size() < workers) {
+            // 请求handler实例
+            handlers.add(new RequestHandler(server, index, cache, accessLog));
+        }
+        server.setRequestHandlers(handlers);
+        for (RequestHandler handler : removed) {
+            handler.stop();
+        }
+        for (int i = from; i < handlers.size(); ++i) {
+            Thread thread = new Thread(handlers.get(i), "nio-server-worker-" + workerSeq++);
+            workerThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * 访问日志，通过系统属性配置：
+     * <ul>
+     * <li>nioserver.accesslog 日志文件，默认logs/access.log，设为空字符串关闭</li>
+     * <li>nioserver.accesslog.bufferSize 环形缓冲区槽位数，默认8192，写满后丢弃新记录</li>
+     * <li>nioserver.accesslog.maxSize 单个文件上限(MB)，默认64</li>
+     * <li>nioserver.accesslog.maxFiles 保留的滚动文件数，默认5</li>
+     * </ul>
+     */
+    private AccessLog accessLog() throws IOException {
+        String path = System.getProperty("nioserver.accesslog", "logs/access.log");
+        if (path.isEmpty()) {
+            return null;
+        }
+        AccessLog log = new AccessLog(new File(path),
+                Integer.getInteger("nioserver.accesslog.bufferSize", 8192),
+                Integer.getInteger("nioserver.accesslog.maxSize", 64) * 1024L * 1024L,
+                Integer.getInteger("nioserver.accesslog.maxFiles", 5));
+        accessLogWriter = new Thread(log, "nio-server-access-log");
+        accessLogWriter.setDaemon(true);
+        accessLogWriter.start();
+        return log;
+    }
+
+    /**
+     * 缓存预热，通过系统属性配置：
+     * <ul>
+     * <li>nioserver.cache.manifest 清单文件，每行一个资源路径</li>
+     * <li>nioserver.cache.snapshot 快照文件，启动时恢复，运行期间定期写入，停机时再写一次</li>
+     * <li>nioserver.cache.snapshotInterval 快照间隔秒数，默认300</li>
+     * <li>nioserver.cache.snapshotLimit 快照最多保存的条目数，默认1000</li>
+     * </ul>
+     */
+    private void warmUp() {
+        warmer = new CacheWarmer(cache, index, cpu);
+        long begin = System.currentTimeMillis();
+
+        String manifest = System.getProperty("nioserver.cache.manifest");
+        if (manifest != null) {
+            try {
+                int count = warmer.warmFromManifest(new File(manifest));
+                logger.info("warmed {} cache entries from manifest {}", count, manifest);
+            } catch (IOException e) {
+                logger.warn("failed to warm cache from manifest {}: {}", manifest, e.getMessage());
+            }
+        }
+
+        String snapshot = System.getProperty("nioserver.cache.snapshot");
+        if (snapshot == null) {
+            return;
+        }
+        snapshotFile = new File(snapshot);
+        if (snapshotFile.isFile()) {
+            try {
+                int count = warmer.restore(snapshotFile);
+                logger.info("restored {} cache entries from snapshot {}", count, snapshot);
+            } catch (IOException e) {
+                logger.warn("failed to restore cache snapshot {}: {}", snapshot, e.getMessage());
+            }
+        }
+        logger.info("cache warm-up took {}ms", System.currentTimeMillis() - begin);
+
+        int interval = Integer.getInteger("nioserver.cache.snapshotInterval", 300);
+        snapshotLimit = Integer.getInteger("nioserver.cache.snapshotLimit", 1000);
+        scheduler.scheduleWithFixedDelay(this::writeSnapshot, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void writeSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        try {
+            int count = warmer.snapshot(snapshotFile, snapshotLimit);
+            if (logger.isDebugEnabled())
+                logger.debug("wrote {} cache entries to snapshot {}", count, snapshotFile);
+        } catch (IOException e) {
+            logger.warn("failed to write cache snapshot {}: {}", snapshotFile, e.getMessage());
+        }
+    }
+
+    private static void join(Thread thread, long millis) {
+        try {
+            thread.join(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
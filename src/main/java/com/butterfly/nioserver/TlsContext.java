@@ -0,0 +1,190 @@
+package com.butterfly.nioserver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.*;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TLS配置和共享资源
+ * <p>
+ * 负责创建{@link SSLEngine}、执行握手的耗时任务（不占用选择器线程）、
+ * 管理加解密用的直接缓冲区池，并统计握手吞吐和会话复用率。
+ * 会话复用同时支持服务端会话缓存和session ticket（JDK 13+）。
+ */
+public class TlsContext {
+
+    private static final Logger logger = LoggerFactory.getLogger(TlsContext.class);
+
+    private static final String[] APPLICATION_PROTOCOLS = {"http/1.1"};
+
+    private final SSLContext sslContext;
+    private final ExecutorService handshakeExecutor;
+    private final int packetBufferSize;
+    private final int applicationBufferSize;
+
+    // 密文缓冲区池，只由选择器线程访问
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+    private final int maxPooledBuffers = Integer.getInteger("nioserver.tls.pooledBuffers", 1024);
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+
+    private TlsContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(Integer.getInteger("nioserver.tls.sessionCacheSize", 20480));
+        sessions.setSessionTimeout(Integer.getInteger("nioserver.tls.sessionTimeout", 86400));
+
+        SSLSession probe = sslContext.createSSLEngine().getSession();
+        this.packetBufferSize = probe.getPacketBufferSize();
+        this.applicationBufferSize = probe.getApplicationBufferSize();
+
+        int threads = Integer.getInteger("nioserver.tls.handshakeThreads",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        AtomicInteger id = new AtomicInteger();
+        this.handshakeExecutor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "nio-server-tls-handshake-" + id.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 通过系统属性配置：
+     * <ul>
+     * <li>nioserver.tls.keystore 密钥库文件，未配置时返回null（明文）</li>
+     * <li>nioserver.tls.keystorePassword 密钥库密码</li>
+     * <li>nioserver.tls.keystoreType 密钥库类型，默认PKCS12</li>
+     * <li>nioserver.tls.sessionTickets 是否启用session ticket，默认true，已设置jdk.tls.server.enableSessionTicketExtension时不生效</li>
+     * </ul>
+     */
+    public static TlsContext fromSystemProperties() throws IOException {
+        String keystore = System.getProperty("nioserver.tls.keystore");
+        if (keystore == null) {
+            return null;
+        }
+        // 需要在SSLContext初始化前设置，命令行直接指定了JDK属性时以其为准
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null)
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                    System.getProperty("nioserver.tls.sessionTickets", "true"));
+
+        char[] password = System.getProperty("nioserver.tls.keystorePassword", "").toCharArray();
+        try (InputStream in = new FileInputStream(keystore)) {
+            KeyStore keyStore = KeyStore.getInstance(System.getProperty("nioserver.tls.keystoreType", "PKCS12"));
+            keyStore.load(in, password);
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, password);
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(kmf.getKeyManagers(), null, null);
+            return new TlsContext(sslContext);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("failed to load keystore " + keystore, e);
+        }
+    }
+
+    TlsSession newSession() throws SSLException {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        setApplicationProtocols(parameters);
+        engine.setSSLParameters(parameters);
+        engine.beginHandshake();
+        return new TlsSession(engine);
+    }
+
+    /**
+     * 在握手线程池中执行SSLEngine的委托任务，完成后回调
+     */
+    void runDelegatedTasks(SSLEngine engine, Runnable callback) {
+        handshakeExecutor.execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            callback.run();
+        });
+    }
+
+    int getApplicationBufferSize() {
+        return applicationBufferSize;
+    }
+
+    ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(packetBufferSize);
+    }
+
+    void releaseBuffer(ByteBuffer buffer) {
+        if (buffer != null && bufferPool.size() < maxPooledBuffers) {
+            buffer.clear();
+            bufferPool.offer(buffer);
+        }
+    }
+
+    void handshakeFinished(TlsSession tls) {
+        handshakes.incrementAndGet();
+        handshakeNanos.addAndGet(System.nanoTime() - tls.handshakeBegin);
+        // 复用的会话沿用原会话的创建时间
+        if (tls.engine.getSession().getCreationTime() < tls.handshakeBeginMillis)
+            resumed.incrementAndGet();
+    }
+
+    void handshakeFailed() {
+        failures.incrementAndGet();
+    }
+
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    public long getResumed() {
+        return resumed.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * 握手统计，输出后清零
+     */
+    public String drainStats(long elapsedNanos) {
+        long count = handshakes.getAndSet(0);
+        long resumedCount = resumed.getAndSet(0);
+        long failed = failures.getAndSet(0);
+        long nanos = handshakeNanos.getAndSet(0);
+        double seconds = Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsedNanos)) / 1000.0;
+        return String.format("tls: %d handshakes (%.1f/s), %d failed, resumption %.1f%%, avg handshake %dus",
+                count, count / seconds, failed, count == 0 ? 0.0 : resumedCount * 100.0 / count,
+                count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(nanos / count));
+    }
+
+    /**
+     * ALPN，SSLParameters.setApplicationProtocols在8u251之后才有，通过反射调用
+     */
+    private static void setApplicationProtocols(SSLParameters parameters) {
+        try {
+            SSLParameters.class.getMethod("setApplicationProtocols", String[].class)
+                    .invoke(parameters, (Object) APPLICATION_PROTOCOLS);
+        } catch (ReflectiveOperationException e) {
+            if (logger.isDebugEnabled())
+                logger.debug("ALPN not supported: {}", e.toString());
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.butterfly.nioserver;
+
+import javax.net.ssl.SSLEngine;
+import java.nio.ByteBuffer;
+
+/**
+ * 单个连接的TLS状态，只由选择器线程访问（{@link #tasksRunning}除外）
+ */
+final class TlsSession {
+
+    final SSLEngine engine;
+    final long handshakeBegin = System.nanoTime();
+    final long handshakeBeginMillis = System.currentTimeMillis();
+
+    // 尚未解密的密文，写模式，没有残留数据时归还缓冲区池
+    ByteBuffer netIn;
+    // 等待写出的密文，读模式，写完后归还缓冲区池
+    ByteBuffer netOut;
+    // 握手委托任务执行中，此时不读不写
+    volatile boolean tasksRunning;
+
+    TlsSession(SSLEngine engine) {
+        this.engine = engine;
+    }
+
+    void release(TlsContext context) {
+        engine.closeOutbound();
+        context.releaseBuffer(netIn);
+        context.releaseBuffer(netOut);
+        netIn = null;
+        netOut = null;
+    }
+}